@@ -1,13 +1,13 @@
 import android.animation.ValueAnimator;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.LinearGradient;
 import android.graphics.Paint;
 import android.graphics.RectF;
 import android.graphics.Shader;
 import android.graphics.drawable.BitmapDrawable;
+import android.os.AsyncTask;
 import android.os.CountDownTimer;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -18,6 +18,7 @@ import android.view.View;
 import android.view.ViewConfiguration;
 import android.widget.Scroller;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -47,6 +48,24 @@ public class LyricView extends View {
     // 延迟消失indicator的时间，ms
     private static final int DELAY_HIDE_DURATION = 3000;
 
+    private static final float DEFAULT_HIGHLIGHT_TEXT_SIZE = 32;
+    private static final float DEFAULT_BESIDE_HIGHLIGHT_TEXT_SIZE = 28;
+    private static final float DEFAULT_NORMAL_TEXT_SIZE = 27;
+    private static final float DEFAULT_PROGRESS_TEXT_SIZE = 16;
+
+    // 进程内共享的原型画笔，各实例通过拷贝得到自己的画笔，避免每次都重新配置
+    private static final Paint HIGHLIGHT_PAINT_PROTOTYPE =
+            createTextPaint(DEFAULT_COLOR_FOR_HIGHLIGHT_LRC, DEFAULT_HIGHLIGHT_TEXT_SIZE);
+    private static final Paint NORMAL_PAINT_PROTOTYPE =
+            createTextPaint(DEFAULT_COLOR_FOR_OTHER_LRC, DEFAULT_NORMAL_TEXT_SIZE);
+
+    // 以下indicator相关资源绘制时不会被修改，所有实例共享，首次显示indicator时才创建（仅在主线程访问）
+    private static Paint sTimelinePaint;
+    private static Paint sProgressPaint;
+    private static Bitmap sPlayBitmap;
+    // sPlayBitmap解码时对应的densityDpi，density变化时需要重新解码
+    private static int sPlayBitmapDensity;
+
     // 是否正在拖动歌词
     private boolean isDragingLrc = false;
     // ACTION_DOWN是否落在play按钮上
@@ -59,6 +78,8 @@ public class LyricView extends View {
     private boolean isShowingIndicator = false;
     // 是否正在加载歌词
     private boolean isLoadingLrc = false;
+    // prewarm时控件尚未attach，需要在attach后再启动当前行的进度和横向滚动计时器
+    private boolean needStartLineTimers = false;
 
     private List<LrcRow> lrcRowList;
     // 实现歌词垂直方向滚动的辅助类
@@ -86,18 +107,15 @@ public class LyricView extends View {
 
     private Paint highlightPaint;
     private Paint normalTextPaint;
-    private Paint timelinePaint;
-    private Paint progressPaint;
-    private Bitmap playBitmap;
+    // 缓存歌词宽度，避免每一帧都重新measureText
+    private LrcWidthCache widthCache;
 
     private int highlightColor = DEFAULT_COLOR_FOR_HIGHLIGHT_LRC;
-    private float highlightTextSize = 32;
+    private float highlightTextSize = DEFAULT_HIGHLIGHT_TEXT_SIZE;
     private int besideHighloghtColor = DEFAULT_COLOR_BESIDE_HIGHLIGHT_LRC;
-    private float besideHighlightTextSize = 28;
+    private float besideHighlightTextSize = DEFAULT_BESIDE_HIGHLIGHT_TEXT_SIZE;
     private int normalTextColor = DEFAULT_COLOR_FOR_OTHER_LRC;
-    private float normalTextSize = 27;
-    private int progressColor = DEFAULT_COLOR_FOR_PROGRESS;
-    private float progressTextSize = 16;
+    private float normalTextSize = DEFAULT_NORMAL_TEXT_SIZE;
     // 用于高亮歌词的渐变色
     private int[] colors = {highlightColor, normalTextColor};
 
@@ -136,31 +154,38 @@ public class LyricView extends View {
     private void init() {
         scroller = new Scroller(getContext());
 
-        highlightPaint = new Paint();
-        highlightPaint.setColor(highlightColor);
-        highlightPaint.setTextSize(highlightTextSize);
-        highlightPaint.setAntiAlias(true);
-
-        normalTextPaint = new Paint();
-        normalTextPaint.setColor(normalTextColor);
-        normalTextPaint.setTextSize(normalTextSize);
-        normalTextPaint.setAntiAlias(true);
-
-        timelinePaint = new Paint();
-        timelinePaint.setColor(COLOR_FOR_TIME_LINE);
-        timelinePaint.setTextSize(5);
+        // 高亮画笔会被设置shader，普通画笔会被修改颜色和字号，所以每个实例需要拷贝一份
+        highlightPaint = new Paint(HIGHLIGHT_PAINT_PROTOTYPE);
+        normalTextPaint = new Paint(NORMAL_PAINT_PROTOTYPE);
 
-        progressPaint = new Paint();
-        progressPaint.setTextSize(progressTextSize);
-        progressPaint.setAntiAlias(true);
-        progressPaint.setColor(progressColor);
-
-        playBitmap = ((BitmapDrawable)getResources().getDrawable(R.drawable.play_src_btn)).getBitmap();
         touchSlop = ViewConfiguration.get(getContext()).getScaledTouchSlop();
+    }
 
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inDensity = 30;
-        options.inTargetDensity = 30;
+    private static Paint createTextPaint(int color, float textSize) {
+        Paint paint = new Paint();
+        paint.setColor(color);
+        paint.setTextSize(textSize);
+        paint.setAntiAlias(true);
+        return paint;
+    }
+
+    /**
+     * indicator相关资源只有在首次显示indicator时才创建，并在所有实例间共享
+     */
+    private void ensureIndicatorResources() {
+        if (sTimelinePaint == null) {
+            sTimelinePaint = new Paint();
+            sTimelinePaint.setColor(COLOR_FOR_TIME_LINE);
+            sTimelinePaint.setTextSize(5);
+        }
+        if (sProgressPaint == null) {
+            sProgressPaint = createTextPaint(DEFAULT_COLOR_FOR_PROGRESS, DEFAULT_PROGRESS_TEXT_SIZE);
+        }
+        int densityDpi = getResources().getDisplayMetrics().densityDpi;
+        if (sPlayBitmap == null || sPlayBitmapDensity != densityDpi) {
+            sPlayBitmap = ((BitmapDrawable) getResources().getDrawable(R.drawable.play_src_btn)).getBitmap();
+            sPlayBitmapDensity = densityDpi;
+        }
     }
 
     @Override
@@ -181,11 +206,20 @@ public class LyricView extends View {
             drawIndicator(canvas);
         }
 
+        // 只绘制可见区域内的歌词，上下各多留一行，避免滚动时边缘的歌词被截断
+        float top = getScrollY() - eachLineHeight;
+        float bottom = getScrollY() + getHeight() + eachLineHeight;
         float y = getHeight() / 2 + 10;
         for (int i = 0; i < lrcRowList.size(); i++) {
-            String lrc = getLrc(i);
+            if (y < top) {
+                y = y + eachLineHeight;
+                continue;
+            }
+            if (y > bottom) {
+                break;
+            }
             if (i == curLine) {
-                drawHighlightText(canvas, lrc, y);
+                drawHighlightText(canvas, i, y);
             } else {
                 drawNormalText(canvas, i, y);
             }
@@ -211,30 +245,32 @@ public class LyricView extends View {
             return;
         }
         isShowingIndicator = true;
+        ensureIndicatorResources();
         // 因为会调用scroll滚动，所以需要加上getScrollY()
         float y = getHeight() / 2 + getScrollY() - 5;
         float x = getWidth();
 
-        canvas.drawLine(105, y, x - 72, y, timelinePaint);
-        canvas.drawBitmap(playBitmap, x-57, y - playBitmap.getHeight()/2, null);
+        canvas.drawLine(105, y, x - 72, y, sTimelinePaint);
+        canvas.drawBitmap(sPlayBitmap, x-57, y - sPlayBitmap.getHeight()/2, null);
 
         String curProgress = lrcRowList.get(curLine).getTimeStr().substring(0, 5);
-        Paint.FontMetricsInt fontMetricsInt = progressPaint.getFontMetricsInt();
+        Paint.FontMetricsInt fontMetricsInt = sProgressPaint.getFontMetricsInt();
         // 文字所占高度
         int fontHeight = fontMetricsInt.bottom - fontMetricsInt.top;
         // 文字垂直方向中心距离baseline的距离
         int offY = fontHeight / 2 - fontMetricsInt.bottom;
         float baselineY = y + offY;
-        canvas.drawText(curProgress, 60, baselineY, progressPaint);
+        canvas.drawText(curProgress, 60, baselineY, sProgressPaint);
     }
 
-    private void drawHighlightText(Canvas canvas, String text, float y) {
+    private void drawHighlightText(Canvas canvas, int lineNo, float y) {
+        String text = getLrc(lineNo);
         if (text.isEmpty()) {
             return;
         }
 
         canvas.save();
-        float textWidth = highlightPaint.measureText(text);
+        float textWidth = widthCache.getHighlightWidth(lineNo, text, highlightPaint);
         // 默认为居中显示
         float x = (getWidth() - textWidth) / 2;
         if (textWidth > LRC_MAX_WIDTH) {
@@ -261,16 +297,18 @@ public class LyricView extends View {
         }
 
         // 因为高亮歌词上下一行的字号和透明度，与其他位置的普通歌词不同
+        float textWidth;
         if (lineNo == curLine - 1 || lineNo == curLine + 1) {
             normalTextPaint.setColor(besideHighloghtColor);
             normalTextPaint.setTextSize(besideHighlightTextSize);
+            textWidth = widthCache.getBesideWidth(lineNo, text, normalTextPaint);
         } else {
             normalTextPaint.setColor(normalTextColor);
             normalTextPaint.setTextSize(normalTextSize);
+            textWidth = widthCache.getNormalWidth(lineNo, text, normalTextPaint);
         }
 
         canvas.save();
-        float textWidth = normalTextPaint.measureText(text);
         float x = (getWidth() - textWidth) / 2;
         if (textWidth > LRC_MAX_WIDTH) {
             // 如果歌词宽度大于控件宽度，则居左显示
@@ -346,6 +384,7 @@ public class LyricView extends View {
         removeCallbacks(hideIndicatorRunnable);
         downY = event.getY();
         needDrawIndicator = true;
+        ensureIndicatorResources();
         isClickPlay = isClickPlayBtn(event);
     }
 
@@ -400,8 +439,7 @@ public class LyricView extends View {
                 } else {
                     smoothScrollTo(getYHeight(curLine));
                 }
-                checkNeedHorizScroll();
-                calculateProgress(lrcRowList.get(curLine).getTotalTime());
+                startLineTimersWhenAttached();
             }
         }
     }
@@ -475,7 +513,7 @@ public class LyricView extends View {
 
     private void checkNeedHorizScroll() {
         String text = getLrc(curLine);
-        float textWidth = highlightPaint.measureText(text);
+        float textWidth = widthCache.getHighlightWidth(curLine, text, highlightPaint);
         if (textWidth > LRC_MAX_WIDTH) {
             startHorizontalScrollWithTimer(LRC_MAX_WIDTH + getLrcStartX() - textWidth,
                     lrcRowList.get(curLine).getTotalTime());
@@ -568,9 +606,9 @@ public class LyricView extends View {
         int spaceHolder = 20;
         // x y分别是draw play按钮时的坐标
         float x = getWidth() - 77;
-        float y = getHeight() / 2 - playBitmap.getHeight()/2;
+        float y = getHeight() / 2 - sPlayBitmap.getHeight()/2;
         return event.getX() > x && event.getY() > y - spaceHolder &&
-                event.getY() < (y + playBitmap.getHeight() + spaceHolder);
+                event.getY() < (y + sPlayBitmap.getHeight() + spaceHolder);
     }
 
     /**
@@ -633,9 +671,108 @@ public class LyricView extends View {
         reset();
         isLoadingLrc = false;
         this.lrcRowList = lrcRows;
+        widthCache = lrcRows == null ? null : new LrcWidthCache(lrcRows.size());
         invalidate();
     }
 
+    /**
+     * 预热歌词：设置歌词和当前行，并在后台线程计算首屏可见歌词的宽度，可在控件attach之前调用。
+     * 必须在主线程调用；当前行的进度和横向滚动计时器会延迟到attach之后才启动。
+     * 计算结果由后台线程直接发布到缓存，绘制时即可读取；若首帧绘制时后台计算尚未完成，
+     * 则由主线程自行measureText。
+     * @param lrcRows: 歌词
+     * @param progress: 当前进度，单位为秒.
+     */
+    public void prewarm(List<LrcRow> lrcRows, int progress) {
+        setLrcRows(lrcRows);
+        if (!hasLrc()) {
+            return;
+        }
+        curLine = getLineNum(progress);
+        forceScrollTo(getScrollX(), getYHeight(curLine));
+        startLineTimersWhenAttached();
+
+        // 与onDraw的可见区域保持一致；尚未布局时，按屏幕高度计算
+        int height = getHeight() > 0 ? getHeight() : getResources().getDisplayMetrics().heightPixels;
+        int halfLines = (int) (height / 2 / eachLineHeight) + 2;
+        final LrcWidthCache cache = widthCache;
+        final int line = curLine;
+        final int from = Math.max(line - halfLines, 0);
+        final int to = Math.min(line + halfLines, lrcRowList.size() - 1);
+        final String[] texts = new String[to - from + 1];
+        for (int i = from; i <= to; i++) {
+            texts[i - from] = getLrc(i);
+        }
+        // 在调用线程拷贝画笔，保证与当前实例的字号一致，且不与主线程的绘制相互影响
+        final Paint highlight = new Paint(highlightPaint);
+        final Paint beside = new Paint(normalTextPaint);
+        beside.setTextSize(besideHighlightTextSize);
+        final Paint normal = new Paint(normalTextPaint);
+        normal.setTextSize(normalTextSize);
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                // 只计算绘制时实际会用到的宽度，其余保持NaN
+                final float[] highlightWidths = new float[texts.length];
+                final float[] besideWidths = new float[texts.length];
+                final float[] normalWidths = new float[texts.length];
+                Arrays.fill(highlightWidths, Float.NaN);
+                Arrays.fill(besideWidths, Float.NaN);
+                Arrays.fill(normalWidths, Float.NaN);
+                for (int i = 0; i < texts.length; i++) {
+                    int lineNo = from + i;
+                    if (lineNo == line) {
+                        highlightWidths[i] = highlight.measureText(texts[i]);
+                    } else if (lineNo == line - 1 || lineNo == line + 1) {
+                        besideWidths[i] = beside.measureText(texts[i]);
+                    } else {
+                        normalWidths[i] = normal.measureText(texts[i]);
+                    }
+                }
+
+                // 直接发布给缓存，无需等待主线程消息，绘制时即可读取
+                cache.publish(from, highlightWidths, besideWidths, normalWidths);
+            }
+        });
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (needStartLineTimers) {
+            // 等待首次布局完成后再启动，横向滚动需要用到控件宽度
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (needStartLineTimers && hasLrc()) {
+                        startLineTimers();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 控件已attach时立即启动当前行的计时器，否则延迟到attach之后
+     */
+    private void startLineTimersWhenAttached() {
+        if (getWindowToken() != null) {
+            startLineTimers();
+        } else {
+            needStartLineTimers = true;
+        }
+    }
+
+    /**
+     * 启动当前行的横向滚动和高亮进度计时器
+     */
+    private void startLineTimers() {
+        needStartLineTimers = false;
+        checkNeedHorizScroll();
+        calculateProgress(lrcRowList.get(curLine).getTotalTime());
+    }
+
     /**
      * 设置当前进度
      * @param progress: 当前进度，单位为秒.
@@ -653,7 +790,9 @@ public class LyricView extends View {
         Log.d(TAG, "reset()");
         forceScrollTo(getScrollX(), 0);
         lrcRowList = null;
+        widthCache = null;
         isLoadingLrc = false;
+        needStartLineTimers = false;
         curLine = 0;
         needDrawIndicator = false;
         isShowingIndicator = false;
@@ -689,4 +828,82 @@ public class LyricView extends View {
     public interface OnViewClickListener {
         void onClick();
     }
+
+    /**
+     * 缓存每行歌词在各字号下的宽度，NaN表示尚未计算。
+     * 缓存数组仅在主线程访问，后台预热的结果通过volatile字段发布
+     */
+    private static class LrcWidthCache {
+        private final float[] highlightWidths;
+        private final float[] besideWidths;
+        private final float[] normalWidths;
+        // 后台预热计算的结果，发布后不再修改
+        private volatile PrewarmResult prewarmResult;
+
+        LrcWidthCache(int size) {
+            highlightWidths = new float[size];
+            besideWidths = new float[size];
+            normalWidths = new float[size];
+            Arrays.fill(highlightWidths, Float.NaN);
+            Arrays.fill(besideWidths, Float.NaN);
+            Arrays.fill(normalWidths, Float.NaN);
+        }
+
+        float getHighlightWidth(int lineNo, String text, Paint paint) {
+            PrewarmResult result = prewarmResult;
+            return getWidth(highlightWidths, result == null ? null : result.highlightWidths,
+                    result, lineNo, text, paint);
+        }
+
+        float getBesideWidth(int lineNo, String text, Paint paint) {
+            PrewarmResult result = prewarmResult;
+            return getWidth(besideWidths, result == null ? null : result.besideWidths,
+                    result, lineNo, text, paint);
+        }
+
+        float getNormalWidth(int lineNo, String text, Paint paint) {
+            PrewarmResult result = prewarmResult;
+            return getWidth(normalWidths, result == null ? null : result.normalWidths,
+                    result, lineNo, text, paint);
+        }
+
+        /**
+         * 发布后台预热计算的结果，可在任意线程调用
+         * @param from: 结果对应的起始行号
+         */
+        void publish(int from, float[] highlight, float[] beside, float[] normal) {
+            prewarmResult = new PrewarmResult(from, highlight, beside, normal);
+        }
+
+        private static float getWidth(float[] widths, float[] prewarmed, PrewarmResult result,
+                                      int lineNo, String text, Paint paint) {
+            if (lineNo < 0 || lineNo >= widths.length) {
+                return paint.measureText(text);
+            }
+            if (Float.isNaN(widths[lineNo]) && prewarmed != null) {
+                int index = lineNo - result.from;
+                if (index >= 0 && index < prewarmed.length) {
+                    widths[lineNo] = prewarmed[index];
+                }
+            }
+            if (Float.isNaN(widths[lineNo])) {
+                widths[lineNo] = paint.measureText(text);
+            }
+            return widths[lineNo];
+        }
+    }
+
+    private static class PrewarmResult {
+        final int from;
+        final float[] highlightWidths;
+        final float[] besideWidths;
+        final float[] normalWidths;
+
+        PrewarmResult(int from, float[] highlightWidths, float[] besideWidths, float[] normalWidths) {
+            this.from = from;
+            this.highlightWidths = highlightWidths;
+            this.besideWidths = besideWidths;
+            this.normalWidths = normalWidths;
+        }
+    }
 }